@@ -1,9 +1,13 @@
 package com.estella.addressbook;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.StringBuilder;
 import java.nio.file.Paths;
@@ -30,7 +34,7 @@ public class AddressBook {
    * @param  c - contact to be appended to this address book
    * @return true if this address book appended the object to its end.
    */
-  public boolean add(Contact c) {
+  public synchronized boolean add(Contact c) {
   	return contactList.add(c);
   }
 
@@ -42,7 +46,7 @@ public class AddressBook {
    *        c - contact to be inserted
    * @throws IndexOutOfBoundsException - if the index is out of range (index < 0 || index > size())
    */
-  public void add(int index, Contact c) {
+  public synchronized void add(int index, Contact c) {
     contactList.add(index, c);
   }
 
@@ -50,7 +54,7 @@ public class AddressBook {
    * Removes all of the contacts from this address book.
    * The address book will be empty after this call returns.
    */
-  public void clear() {
+  public synchronized void clear() {
     contactList.clear();
   }
 
@@ -65,7 +69,7 @@ public class AddressBook {
 	 * @param  c - contact to be removed from this address book, if present
 	 * @return true if this address book contained the specified contact
 	 */
-  public boolean remove(Contact c) {
+  public synchronized boolean remove(Contact c) {
     return contactList.remove(c);
   }
 
@@ -78,10 +82,132 @@ public class AddressBook {
    * @return the contact that was removed from the address book
    * @throws IndexOutOfBoundsException - if the index is out of range (index < 0 || index > size())
    */
-  public Contact remove(int index) {
+  public synchronized Contact remove(int index) {
     return contactList.remove(index);
   }
 
+  /**
+   * Applies all of the operations collected in the specified batch to this address book in a
+   * single pass.
+   *
+   * Every index in the batch refers to a position in this address book as it was BEFORE the
+   * batch is applied, so the operations don't shift each other. Contacts inserted at the same
+   * index keep the order in which they were added to the batch, and appended contacts follow
+   * any contact inserted at index size().
+   *
+   * Removes by index are resolved before removes by contact, whatever their order in the batch.
+   * So remove(Contact) removes the first occurrence of the contact that isn't already removed
+   * by index, and the same index can only be removed once.
+   *
+   * The batch is atomic: all the operations are validated and the new contact list is built
+   * aside, then swapped in at once. If any operation is invalid, nothing is changed. Every
+   * method that reads or changes this address book is synchronized, so no other call ever sees
+   * a half-applied batch.
+   *
+   * @param  batch - the operations to be applied to this address book
+   * @return a list holding one result per operation, in the batch order: the appended or
+   *         inserted contact for an add, the removed contact for a remove, or null if
+   *         remove(Contact) found no such contact.
+   * @throws IndexOutOfBoundsException - if an insert index is out of range
+   *         (index < 0 || index > size()), or a remove index is out of range
+   *         (index < 0 || index >= size())
+   *         IllegalArgumentException - if the same index is removed twice in the batch
+   */
+  public synchronized List<Contact> apply(Batch batch) {
+    List<Contact> current = contactList;
+    int size = current.size();
+    int opCount = batch.operations.size();
+    boolean[] removed = new boolean[size];
+    List<List<Contact>> inserted = new ArrayList<>(size + 1);
+    for(int i = 0; i <= size; i++) {
+      inserted.add(null);
+    }
+    List<Contact> appended = new ArrayList<>();
+    List<Contact> results = new ArrayList<>(opCount);
+    boolean hasContactRemoves = false;
+
+    for(Batch.Operation op : batch.operations) {
+      switch(op.type) {
+        case APPEND:
+          appended.add(op.contact);
+          results.add(op.contact);
+          break;
+        case INSERT:
+          if(op.index < 0 || op.index > size) {
+            throw new IndexOutOfBoundsException("Index: " + op.index + ", Size: " + size);
+          }
+          insertAt(inserted, op.index, op.contact);
+          results.add(op.contact);
+          break;
+        case REMOVE_INDEX:
+          if(op.index < 0 || op.index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + op.index + ", Size: " + size);
+          }
+          if(removed[op.index]) {
+            throw new IllegalArgumentException("Contact at index " + op.index
+                + " is removed more than once in the batch");
+          }
+          removed[op.index] = true;
+          results.add(current.get(op.index));
+          break;
+        case REMOVE_CONTACT:
+          hasContactRemoves = true;
+          results.add(null);
+          break;
+      }
+    }
+
+    if(hasContactRemoves) {
+      // One pass to find where every contact sits, then each remove is a lookup.
+      Map<Contact, ArrayDeque<Integer>> positions = new HashMap<>();
+      for(int i = 0; i < size; i++) {
+        if(!removed[i]) {
+          Contact c = current.get(i);
+          ArrayDeque<Integer> queue = positions.get(c);
+          if(queue == null) {
+            queue = new ArrayDeque<>();
+            positions.put(c, queue);
+          }
+          queue.add(i);
+        }
+      }
+      for(int k = 0; k < opCount; k++) {
+        Batch.Operation op = batch.operations.get(k);
+        if(op.type == Batch.Type.REMOVE_CONTACT) {
+          ArrayDeque<Integer> queue = positions.get(op.contact);
+          if(queue != null && !queue.isEmpty()) {
+            int i = queue.poll();
+            removed[i] = true;
+            results.set(k, current.get(i));
+          }
+        }
+      }
+    }
+
+    List<Contact> merged = new ArrayList<>(size + opCount);
+    for(int i = 0; i <= size; i++) {
+      if(inserted.get(i) != null) {
+        merged.addAll(inserted.get(i));
+      }
+      if(i < size && !removed[i]) {
+        merged.add(current.get(i));
+      }
+    }
+    merged.addAll(appended);
+    contactList = merged;
+    return results;
+  }
+
+  /**
+   * Queues the specified contact to be inserted before the original contact at the index.
+   */
+  private void insertAt(List<List<Contact>> inserted, int index, Contact c) {
+    if(inserted.get(index) == null) {
+      inserted.set(index, new ArrayList<Contact>());
+    }
+    inserted.get(index).add(c);
+  }
+
   /**
    * Ignoring case, returns true if and only if String val contains the specified String keyword.
    *
@@ -100,7 +226,7 @@ public class AddressBook {
    * You could just use String#contains and String#toLowerCase which would work the same
    * but be more readable.
    */
-  private boolean containsIgnoreCase(String val, String keyword) {
+  private static boolean containsIgnoreCase(String val, String keyword) {
     return Pattern.compile(Pattern.quote(keyword), Pattern.CASE_INSENSITIVE).matcher(val).find();
   }
 
@@ -121,40 +247,36 @@ public class AddressBook {
    * (how many lines would you need to change just in AddressBook#search?
    * How many in parseContact?).
    */
-  public ArrayList<Contact> search(String keyword) {
+  public synchronized ArrayList<Contact> search(String keyword) {
     ArrayList<Contact> result = new ArrayList<>();
-    String name;
-    String street;
-    String city;
-    String state;
-    String zip;
-    String phone;
-    String email;
-    String note;
     for(Contact c : contactList) {
-      name = c.getName();
-      street = c.getAddressStreet();
-      city = c.getAddressCity();
-      state = c.getAddressState();
-      zip = c.getAddressZIP();
-      phone = c.getPhoneNumber();
-      email = c.getEmail();
-      note = c.getNote();
-
-      if (containsIgnoreCase(name, keyword)
-          || containsIgnoreCase(street, keyword)
-          || containsIgnoreCase(city, keyword)
-          || containsIgnoreCase(state, keyword)
-          || containsIgnoreCase(zip, keyword)
-          || containsIgnoreCase(phone, keyword)
-          || containsIgnoreCase(email, keyword)
-          || containsIgnoreCase(note, keyword)) {
+      if (matches(c, keyword)) {
         result.add(c);
       }
     }
     return result;
   }
 
+  /**
+   * Case-insensitively, returns true if and only if the specified contact has or contains the
+   * specified keyword in any of its property.
+   *
+   * @param  c - the contact to be checked;
+   *         keyword - the specified keyword for searching.
+   * @return true if any property of the contact contains, case-insensitively, the keyword.
+   */
+  static boolean matches(Contact c, String keyword) {
+    String name = c.getName();
+    return (name != null && containsIgnoreCase(name, keyword))
+        || containsIgnoreCase(c.getAddressStreet(), keyword)
+        || containsIgnoreCase(c.getAddressCity(), keyword)
+        || containsIgnoreCase(c.getAddressState(), keyword)
+        || containsIgnoreCase(c.getAddressZIP(), keyword)
+        || containsIgnoreCase(c.getPhoneNumber(), keyword)
+        || containsIgnoreCase(c.getEmail(), keyword)
+        || containsIgnoreCase(c.getNote(), keyword);
+  }
+
   /**
    * Save this address book as a plain-text file to the specified path.
    *
@@ -172,7 +294,7 @@ public class AddressBook {
    * 2. Initializing entry to the empty string in AddressBook#saveAsFile is redundant.
    * 3. StringBuilder would be better in saveAsFile.
    */
-  public void saveAsFile(String path) throws FileNotFoundException {
+  public synchronized void saveAsFile(String path) throws FileNotFoundException {
   	PrintWriter writer = new PrintWriter(path);
   	String entry = "";
   	for(Contact c : contactList) {
@@ -249,19 +371,46 @@ public class AddressBook {
              NoSuchElementException - if no line was found
              IllegalStateException - if this scanner is closed
    */
-  public void readFromFile(String path) throws Exception {
+  public synchronized void readFromFile(String path) throws Exception {
   	Scanner scanner = new Scanner(Paths.get(path));
   	String line = "";
   	Contact contact;
-  	contactList.clear();
+  	List<Contact> loaded = new ArrayList<>();
   	while(scanner.hasNextLine()) {
   	  line = scanner.nextLine();
   		if(line.trim().length() != 0) {
   		  contact = parseContact(line);
-				contactList.add(contact);
+				loaded.add(contact);
   		}
   	}
   	scanner.close();
+  	contactList = loaded;
+  }
+
+  /**
+   * Save this address book as a compressed snapshot file to the specified path.
+   *
+   * The snapshot is much smaller than the plain-text file, and its contacts can be read one by
+   * one or searched in parallel with ContactSnapshot, without loading the whole file.
+   *
+   * @param  path - the specified path to save this address book.
+   * @throws IOException - if the file cannot be created or written.
+   */
+  public synchronized void saveAsSnapshot(String path) throws IOException {
+    ContactSnapshot.write(path, contactList);
+  }
+
+  /**
+   * Read the address book in a compressed snapshot file. It clears all Contacts from this
+   * AddressBook and populates it an new with the Contacts in the snapshot.
+   *
+   * @param  path - the specified path to read this address book.
+   * @throws IOException - if the file cannot be read, or it is not a valid snapshot.
+   */
+  public synchronized void readFromSnapshot(String path) throws IOException {
+    try(ContactSnapshot snapshot = ContactSnapshot.open(path)) {
+      contactList = new ArrayList<>(snapshot.readAll());
+    }
   }
 
   /**
@@ -269,7 +418,7 @@ public class AddressBook {
    *
    * @return a string representation of the address book.
    */
-  @Override public String toString() {
+  @Override public synchronized String toString() {
   	StringBuilder sb = new StringBuilder();
   	String gapLine = "--------------------------------\n";
   	for(Contact contact : contactList) {
@@ -278,4 +427,95 @@ public class AddressBook {
   	}
   	return sb.toString();
   }
+
+  /**
+   * A batch of adds, positional inserts and removes, which are collected first and then
+   * applied to an address book in one pass by AddressBook#apply.
+   *
+   * e.g. AddressBook.Batch batch = new AddressBook.Batch()
+   *          .add(c1)
+   *          .add(0, c2)
+   *          .remove(3);
+   *      book.apply(batch);
+   */
+  public static class Batch {
+    private enum Type { APPEND, INSERT, REMOVE_INDEX, REMOVE_CONTACT }
+
+    private static class Operation {
+      private final Type type;
+      private final int index;
+      private final Contact contact;
+
+      private Operation(Type type, int index, Contact contact) {
+        this.type = type;
+        this.index = index;
+        this.contact = contact;
+      }
+    }
+
+    private final List<Operation> operations = new ArrayList<>();
+
+    /**
+     * Constructs an empty batch.
+     */
+    public Batch() {
+    }
+
+    /**
+     * Queues the specific contact to be appended to the end of the address book.
+     *
+     * @param  c - contact to be appended
+     * @return this Batch instance
+     */
+    public Batch add(Contact c) {
+      operations.add(new Operation(Type.APPEND, -1, c));
+      return this;
+    }
+
+    /**
+     * Queues the specific contact to be inserted before the contact at the specified position.
+     *
+     * @param  index - index, in the address book before the batch is applied, at which the
+     *                 specified contact is to be inserted. Please note, the K-th contact's
+     *                 index is (K-1).
+     *         c - contact to be inserted
+     * @return this Batch instance
+     */
+    public Batch add(int index, Contact c) {
+      operations.add(new Operation(Type.INSERT, index, c));
+      return this;
+    }
+
+    /**
+     * Queues the removal of the first occurrence of the specified contact, if it's present.
+     *
+     * @param  c - contact to be removed, if present
+     * @return this Batch instance
+     */
+    public Batch remove(Contact c) {
+      operations.add(new Operation(Type.REMOVE_CONTACT, -1, c));
+      return this;
+    }
+
+    /**
+     * Queues the removal of the contact at the specified position.
+     *
+     * @param  index - index, in the address book before the batch is applied, of the contact
+     *                 to be removed. Please note, the K-th contact's index is (K-1).
+     * @return this Batch instance
+     */
+    public Batch remove(int index) {
+      operations.add(new Operation(Type.REMOVE_INDEX, index, null));
+      return this;
+    }
+
+    /**
+     * Returns the number of operations in this batch.
+     *
+     * @return the number of operations in this batch
+     */
+    public int size() {
+      return operations.size();
+    }
+  }
 }
@@ -366,23 +366,45 @@ public class Contact {
   }
 
   /**
-   * Returns a hash code value for the Contact object
+   * Returns a hash code value for the Contact object. Like equals, it ignores case, so that
+   * equal contacts always have the same hash code.
    *
    * @return  a hash code value for the Contact object
    */
   @Override public int hashCode() {
     int result = 17;
-    result = 31 * result + (name == null ? 0 : name.hashCode());
-    result = 31 * result + (addressStreet == null ? 0 : addressStreet.hashCode());
-    result = 31 * result + (addressCity == null ? 0 : addressCity.hashCode());
-    result = 31 * result + (addressState == null ? 0 : addressState.hashCode());
-    result = 31 * result + (addressZIP == null ? 0 : addressZIP.hashCode());
-    result = 31 * result + (phoneNumber == null ? 0 : phoneNumber.hashCode());
-    result = 31 * result + (email == null ? 0 : email.hashCode());
-    result = 31 * result + (note == null ? 0 : note.hashCode());
+    result = 31 * result + hashCodeIgnoreCase(name);
+    result = 31 * result + hashCodeIgnoreCase(addressStreet);
+    result = 31 * result + hashCodeIgnoreCase(addressCity);
+    result = 31 * result + hashCodeIgnoreCase(addressState);
+    result = 31 * result + hashCodeIgnoreCase(addressZIP);
+    result = 31 * result + hashCodeIgnoreCase(phoneNumber);
+    result = 31 * result + hashCodeIgnoreCase(email);
+    result = 31 * result + hashCodeIgnoreCase(note);
     return result;
   }
 
+  /**
+   * Returns a hash code of the String that ignores case in the same way as
+   * String#equalsIgnoreCase, i.e. every code point is folded to upper case and then to
+   * lower case.
+   *
+   * @param  val - the String to hash, may be null
+   * @return a case-insensitive hash code of val, or 0 if val is null
+   */
+  private static int hashCodeIgnoreCase(String val) {
+    if(val == null) {
+      return 0;
+    }
+    int h = 0;
+    for(int i = 0; i < val.length(); ) {
+      int cp = val.codePointAt(i);
+      h = 31 * h + Character.toLowerCase(Character.toUpperCase(cp));
+      i += Character.charCount(cp);
+    }
+    return h;
+  }
+
   /**
    * Returns a string representation of the Contact object.
    *
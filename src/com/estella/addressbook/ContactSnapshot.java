@@ -0,0 +1,489 @@
+package com.estella.addressbook;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compressed, read-only snapshot of an address book on disk.
+ *
+ * The contacts are split into blocks of a fixed number of contacts, and every block is
+ * compressed on its own with Deflate. A block index at the end of the file records where each
+ * block starts, so a single contact can be read, or the snapshot can be searched block by
+ * block in parallel, without decompressing the whole file.
+ *
+ * File layout (all numbers big-endian):
+ *   header      - magic "ABSN", version, contacts per block, number of contacts
+ *   blocks      - the Deflate-compressed blocks, one after another
+ *   block index - for every block: offset, compressed length, uncompressed length
+ *   footer      - number of blocks, offset of the block index
+ *
+ * Inside a block every contact is stored as its eight properties, in the order name, street,
+ * city, state, ZIP, phone, email, note. Each property is written as its length in bytes
+ * followed by its UTF-8 bytes, so there is no limit on how long a property can be.
+ */
+public class ContactSnapshot implements AutoCloseable {
+  private static final int MAGIC = 0x4142534E; // "ABSN"
+  private static final int VERSION = 2;
+  private static final int HEADER_LENGTH = 16;
+  private static final int INDEX_ENTRY_LENGTH = 16;
+  private static final int FOOTER_LENGTH = 12;
+
+  /**
+   * The threads shared by all the searches. They are daemon threads, so they never keep the
+   * JVM running, and they are never interrupted, since an interrupted read closes the channel.
+   */
+  private static final ExecutorService SEARCH_EXECUTOR = Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "contact-snapshot-search-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  /**
+   * The number of contacts in a block, unless specified otherwise.
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 256;
+
+  private final FileChannel channel;
+  private final int blockSize;
+  private final int size;
+  private final long[] blockOffsets;
+  private final int[] compressedLengths;
+  private final int[] uncompressedLengths;
+
+  /**
+   * Opens the snapshot file at the specified path and reads its block index.
+   * The contacts themselves are not read until they are asked for.
+   *
+   * @param  path - the specified path of the snapshot file.
+   * @return an opened snapshot, which should be closed after use.
+   * @throws IOException - if the file cannot be read, or it is not a valid snapshot.
+   */
+  public static ContactSnapshot open(String path) throws IOException {
+    FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+    try {
+      return new ContactSnapshot(channel);
+    } catch(IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads the header and the block index of the snapshot from the specified channel.
+   *
+   * @param  channel - an opened channel of the snapshot file.
+   * @throws IOException - if the channel cannot be read, or it is not a valid snapshot.
+   */
+  private ContactSnapshot(FileChannel channel) throws IOException {
+    this.channel = channel;
+    long fileLength = channel.size();
+    if(fileLength < HEADER_LENGTH + FOOTER_LENGTH) {
+      throw new IOException("Not an address book snapshot: file is too short");
+    }
+
+    ByteBuffer header = readFully(0, HEADER_LENGTH);
+    if(header.getInt() != MAGIC) {
+      throw new IOException("Not an address book snapshot: bad magic number");
+    }
+    int version = header.getInt();
+    if(version != VERSION) {
+      throw new IOException("Unsupported address book snapshot version: " + version);
+    }
+    blockSize = header.getInt();
+    size = header.getInt();
+
+    ByteBuffer footer = readFully(fileLength - FOOTER_LENGTH, FOOTER_LENGTH);
+    int blockCount = footer.getInt();
+    long indexOffset = footer.getLong();
+    long indexLength = (long) blockCount * INDEX_ENTRY_LENGTH;
+    if(blockSize <= 0 || size < 0 || blockCount < 0
+        || blockCount != ((long) size + blockSize - 1) / blockSize
+        || indexOffset < HEADER_LENGTH || indexLength > Integer.MAX_VALUE
+        || indexOffset + indexLength != fileLength - FOOTER_LENGTH) {
+      throw new IOException("Corrupt address book snapshot: bad block index");
+    }
+
+    blockOffsets = new long[blockCount];
+    compressedLengths = new int[blockCount];
+    uncompressedLengths = new int[blockCount];
+    ByteBuffer index = readFully(indexOffset, (int) indexLength);
+    for(int i = 0; i < blockCount; i++) {
+      blockOffsets[i] = index.getLong();
+      compressedLengths[i] = index.getInt();
+      uncompressedLengths[i] = index.getInt();
+      if(compressedLengths[i] < 0 || uncompressedLengths[i] < 0
+          || blockOffsets[i] < HEADER_LENGTH
+          || blockOffsets[i] > indexOffset - compressedLengths[i]) {
+        throw new IOException("Corrupt address book snapshot: bad index entry for block " + i);
+      }
+    }
+  }
+
+  /**
+   * Saves the specified contacts as a snapshot file to the specified path, with
+   * DEFAULT_BLOCK_SIZE contacts in a block.
+   *
+   * @param  path - the specified path to save the snapshot.
+   *         contacts - the contacts to be saved.
+   * @throws IOException - if the file cannot be created or written.
+   */
+  public static void write(String path, List<Contact> contacts) throws IOException {
+    write(path, contacts, DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * Saves the specified contacts as a snapshot file to the specified path.
+   *
+   * A smaller block size makes reading one contact cheaper, and a larger one compresses better.
+   *
+   * The snapshot is first written to a temporary file in the same directory, which then
+   * atomically replaces the target. So if saving fails, any previous file at the path is kept.
+   *
+   * @param  path - the specified path to save the snapshot.
+   *         contacts - the contacts to be saved.
+   *         blockSize - the number of contacts in a block.
+   * @throws IOException - if the file cannot be created or written.
+   *         IllegalArgumentException - if blockSize is not positive.
+   */
+  public static void write(String path, List<Contact> contacts, int blockSize)
+      throws IOException {
+    if(blockSize <= 0) {
+      throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+    }
+    int size = contacts.size();
+    int blockCount = (int) (((long) size + blockSize - 1) / blockSize);
+    ByteBuffer index = ByteBuffer.allocate(blockCount * INDEX_ENTRY_LENGTH);
+    Path target = Paths.get(path).toAbsolutePath();
+    Path temp = createSiblingFile(target);
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    boolean moved = false;
+
+    try {
+      try(FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(VERSION).putInt(blockSize).putInt(size);
+        header.flip();
+        writeFully(out, header);
+
+        long offset = HEADER_LENGTH;
+        for(int block = 0; block < blockCount; block++) {
+          int start = block * blockSize;
+          int end = start + Math.min(size - start, blockSize);
+          byte[] raw = encodeBlock(contacts.subList(start, end));
+          byte[] compressed = deflate(deflater, raw);
+          writeFully(out, ByteBuffer.wrap(compressed));
+          index.putLong(offset).putInt(compressed.length).putInt(raw.length);
+          offset += compressed.length;
+        }
+
+        index.flip();
+        writeFully(out, index);
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_LENGTH);
+        footer.putInt(blockCount).putLong(offset);
+        footer.flip();
+        writeFully(out, footer);
+        out.force(true);
+      }
+      Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+      moved = true;
+    } finally {
+      deflater.end();
+      if(!moved) {
+        Files.deleteIfExists(temp);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of contacts in this snapshot.
+   *
+   * @return the number of contacts in this snapshot.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the contact at the specified position in this snapshot. Only the block holding
+   * the contact is read and decompressed.
+   *
+   * @param  index - index of the contact to return.
+   *                 Please note, the K-th contact's index is (K-1).
+   * @return the contact at the specified position in this snapshot.
+   * @throws IndexOutOfBoundsException - if the index is out of range (index < 0 || index >= size())
+   *         IOException - if the snapshot cannot be read.
+   */
+  public Contact get(int index) throws IOException {
+    if(index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    return readBlock(index / blockSize).get(index % blockSize);
+  }
+
+  /**
+   * Returns all of the contacts in this snapshot, in order.
+   *
+   * @return a list of all of the contacts in this snapshot.
+   * @throws IOException - if the snapshot cannot be read.
+   */
+  public List<Contact> readAll() throws IOException {
+    List<Contact> result = new ArrayList<>(size);
+    for(int i = 0; i < blockOffsets.length; i++) {
+      result.addAll(readBlock(i));
+    }
+    return result;
+  }
+
+  /**
+   * Case-insensitively, searches for the contact(s) that has or contains the specified keyword in
+   * any of its property, in the same way as AddressBook#search.
+   *
+   * The blocks are decompressed and searched in parallel, one task per block, on a thread pool
+   * shared by all the snapshots. The results keep the order of the contacts in the snapshot.
+   * If a block fails, the blocks not yet started are skipped.
+   *
+   * @param  keyword - the specified keyword for searching.
+   * @return a list of the contact(s) that has or contains, case-insensitively, the specified
+   *         keyword in any of its property.
+   * @throws IOException - if the snapshot cannot be read.
+   */
+  public ArrayList<Contact> search(final String keyword) throws IOException {
+    List<Future<List<Contact>>> futures = new ArrayList<>(blockOffsets.length);
+    try {
+      for(int i = 0; i < blockOffsets.length; i++) {
+        final int block = i;
+        futures.add(SEARCH_EXECUTOR.submit(new Callable<List<Contact>>() {
+          @Override public List<Contact> call() throws IOException {
+            List<Contact> found = new ArrayList<>();
+            for(Contact c : readBlock(block)) {
+              if(AddressBook.matches(c, keyword)) {
+                found.add(c);
+              }
+            }
+            return found;
+          }
+        }));
+      }
+
+      ArrayList<Contact> result = new ArrayList<>();
+      for(Future<List<Contact>> future : futures) {
+        result.addAll(future.get());
+      }
+      return result;
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while searching the snapshot", e);
+    } catch(ExecutionException e) {
+      if(e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to search the snapshot", e.getCause());
+    } finally {
+      // Never interrupt a running task: the channel is shared and would be closed for good.
+      for(Future<List<Contact>> future : futures) {
+        future.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Closes the snapshot file.
+   *
+   * @throws IOException - if an I/O error occurs.
+   */
+  @Override public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Reads and decompresses the specified block. It's safe to be called by several threads
+   * at the same time, since the channel is only read with absolute positions.
+   *
+   * @param  block - index of the block to read.
+   * @return the contacts in the block.
+   * @throws IOException - if the block cannot be read, or it is corrupt.
+   */
+  private List<Contact> readBlock(int block) throws IOException {
+    ByteBuffer compressed = readFully(blockOffsets[block], compressedLengths[block]);
+    int expected = uncompressedLengths[block];
+    // Grow the buffer as the data is inflated instead of trusting the length in the index.
+    ByteArrayOutputStream out = new ByteArrayOutputStream(
+        (int) Math.min(expected, 4L * compressedLengths[block] + 64));
+    byte[] buffer = new byte[8192];
+    byte[] raw;
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed.array());
+      while(!inflater.finished()) {
+        int inflated = inflater.inflate(buffer);
+        if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        if(out.size() + inflated > expected) {
+          throw new IOException("Corrupt address book snapshot: block " + block
+              + " is longer than its index entry");
+        }
+        out.write(buffer, 0, inflated);
+      }
+      raw = out.toByteArray();
+      if(!inflater.finished() || raw.length != expected) {
+        throw new IOException("Corrupt address book snapshot: block " + block + " is truncated");
+      }
+      if(inflater.getRemaining() != 0) {
+        throw new IOException("Corrupt address book snapshot: block " + block
+            + " has trailing data");
+      }
+    } catch(DataFormatException e) {
+      throw new IOException("Corrupt address book snapshot: block " + block, e);
+    } finally {
+      inflater.end();
+    }
+
+    int count = Math.min(blockSize, size - block * blockSize);
+    return decodeBlock(raw, count);
+  }
+
+  /**
+   * Creates an empty temporary file next to the target. It gets the permissions of the target
+   * if the target exists, and the default permissions of a new file otherwise.
+   */
+  private static Path createSiblingFile(Path target) throws IOException {
+    Path temp = target.resolveSibling(
+        "." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+    Files.createFile(temp);
+    try {
+      if(Files.exists(target)) {
+        Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+      }
+    } catch(UnsupportedOperationException e) {
+      // Not a POSIX file system, the default permissions are kept.
+    } catch(IOException e) {
+      Files.deleteIfExists(temp);
+      throw e;
+    }
+    return temp;
+  }
+
+  /**
+   * Reads exactly length bytes from the channel, starting at the specified position.
+   */
+  private ByteBuffer readFully(long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while(buffer.hasRemaining()) {
+      int n = channel.read(buffer, position + buffer.position());
+      if(n < 0) {
+        throw new EOFException("Unexpected end of address book snapshot");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+    while(buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+
+  private static byte[] deflate(Deflater deflater, byte[] raw) {
+    deflater.reset();
+    deflater.setInput(raw);
+    deflater.finish();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 4));
+    byte[] buffer = new byte[8192];
+    while(!deflater.finished()) {
+      int n = deflater.deflate(buffer);
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] encodeBlock(List<Contact> contacts) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    for(Contact c : contacts) {
+      writeString(out, c.getName() == null ? "" : c.getName());
+      writeString(out, c.getAddressStreet());
+      writeString(out, c.getAddressCity());
+      writeString(out, c.getAddressState());
+      writeString(out, c.getAddressZIP());
+      writeString(out, c.getPhoneNumber());
+      writeString(out, c.getEmail());
+      writeString(out, c.getNote());
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static List<Contact> decodeBlock(byte[] raw, int count) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+    List<Contact> contacts = new ArrayList<>(count);
+    for(int i = 0; i < count; i++) {
+      contacts.add(new Contact.Builder(readString(in))
+          .addressStreet(readString(in))
+          .addressCity(readString(in))
+          .addressState(readString(in))
+          .addressZIP(readString(in))
+          .phoneNumber(readString(in))
+          .email(readString(in))
+          .note(readString(in))
+          .build());
+    }
+    if(in.available() != 0) {
+      throw new IOException("Corrupt address book snapshot: block has trailing data");
+    }
+    return contacts;
+  }
+
+  /**
+   * Writes the String as its length in bytes followed by its UTF-8 bytes.
+   */
+  private static void writeString(DataOutputStream out, String val) throws IOException {
+    byte[] bytes = val.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a String written by writeString.
+   */
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if(length < 0 || length > in.available()) {
+      throw new IOException("Corrupt address book snapshot: bad property length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}